@@ -131,6 +131,9 @@ public class ChatClient {
         } else if (serverMessage.startsWith("PRIVATE ")) {
             String[] parts = serverMessage.split(" ", 3);
             if (parts.length >= 3) return "[PRIVADO] " + parts[1] + ": " + parts[2];
+        } else if (serverMessage.startsWith("RECONNECT ")) {
+            String[] parts = serverMessage.split(" ");
+            if (parts.length >= 2) return "*** Servidor a reiniciar, volte a ligar daqui a " + parts[1] + " ms ***";
         } else if (serverMessage.equals("OK")) {
             return "✓ Sucesso";
         } else if (serverMessage.equals("ERROR")) {
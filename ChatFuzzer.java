@@ -0,0 +1,722 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ChatFuzzer {
+
+    private static final String[] WORDS = {"ola", "mundo", "ação", "€uro", "日本語", "😀", "a/b", "b//c", "x", "teste"};
+    private static final String[] LINE_ENDINGS = {"\n", "\r\n", "\r"};
+    private static final long TIMEOUT_MS = 5000;
+    private static final int SOAK_FUZZ_ITERATIONS = 50;
+    private static final int ROOM_POOL = 3;
+    private static final long MAX_PRIVATE_BYTES = Long.getLong("chat.maxPendingOutputBytes", 1024 * 1024) - "OK\n".length();
+
+    private final int port;
+    private final long seed;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final OfflineModel offlineModel = Boolean.getBoolean("chat.offline") ? new OfflineModel() : null;
+
+    public ChatFuzzer(int port, long seed) {
+        this.port = port;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 5) {
+            System.err.println("Uso: java ChatFuzzer <porta_tcp> [clientes] [iteracoes] [soak_minutos] [semente]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        long soakMinutes = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime();
+        System.out.println("Semente: " + seed);
+
+        startServer(port);
+        ChatFuzzer fuzzer = new ChatFuzzer(port, seed);
+
+        fuzzer.runStateMachineFuzz(clients, iterations, 0);
+        List<SimClient> members = fuzzer.connectToRoom(clients, "sala");
+        try {
+            List<Long> latencies = fuzzer.runBroadcastRound(members, iterations, 0);
+            System.out.printf("difusao: p50=%.2f ms p99=%.2f ms%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99));
+            if (soakMinutes > 0) {
+                fuzzer.runSoak(members, clients, iterations, soakMinutes);
+            }
+        } finally {
+            for (SimClient member : members) {
+                member.close();
+            }
+        }
+
+        int failed = fuzzer.failures.get();
+        System.out.println(failed == 0 ? "OK" : "FALHAS: " + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void startServer(int port) throws InterruptedException {
+        Thread serverThread = new Thread(() -> new ChatServer().initializeServer(port), "chat-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Servidor não arrancou na porta " + port);
+    }
+
+    public void runStateMachineFuzz(int clients, int iterations, int round) throws IOException, InterruptedException {
+        Random random = new Random(seed + round * 1000003L);
+        int nickPool = clients + 2;
+        ReferenceModel model = new ReferenceModel(clients, offlineModel);
+        List<SimClient> sims = new ArrayList<>();
+        String[] stagedLines = new String[clients];
+        byte[][] stagedBytes = new byte[clients][];
+        int[] contentLengths = new int[clients];
+        int[] sentBytes = new int[clients];
+        int[] verified = new int[clients];
+
+        try {
+            for (int k = 0; k < clients; k++) {
+                sims.add(new SimClient(port));
+            }
+
+            int completed = 0;
+            while (completed < clients * iterations) {
+                int k = random.nextInt(clients);
+                if (stagedLines[k] == null) {
+                    stagedLines[k] = randomCommand(random, nickPool);
+                    contentLengths[k] = stagedLines[k].getBytes(StandardCharsets.UTF_8).length;
+                    String ending = LINE_ENDINGS[random.nextInt(LINE_ENDINGS.length)];
+                    stagedBytes[k] = (stagedLines[k] + ending).getBytes(StandardCharsets.UTF_8);
+                    sentBytes[k] = 0;
+                }
+
+                if (random.nextBoolean() && sentBytes[k] < contentLengths[k]) {
+                    int end = sentBytes[k] + 1 + random.nextInt(contentLengths[k] - sentBytes[k]);
+                    sims.get(k).sendFragmented(stagedBytes[k], sentBytes[k], end, random);
+                    sentBytes[k] = end;
+                    continue;
+                }
+
+                sims.get(k).sendFragmented(stagedBytes[k], sentBytes[k], stagedBytes[k].length, random);
+                model.apply(k, stagedLines[k]);
+                stagedLines[k] = null;
+                completed++;
+                if (!awaitExpected(sims.get(k), k, model, verified)) {
+                    return;
+                }
+            }
+
+            for (int k = 0; k < clients; k++) {
+                if (stagedLines[k] != null) {
+                    sims.get(k).sendFragmented(stagedBytes[k], sentBytes[k], stagedBytes[k].length, random);
+                    model.apply(k, stagedLines[k]);
+                }
+                sims.get(k).sendFragmented("/bye\n", random);
+                model.apply(k, "/bye");
+                if (!awaitExpected(sims.get(k), k, model, verified)) {
+                    return;
+                }
+            }
+
+            for (int k = 0; k < clients; k++) {
+                if (!awaitExpected(sims.get(k), k, model, verified)) {
+                    return;
+                }
+                Received extra = sims.get(k).poll(100);
+                if (extra != null) {
+                    fail("fuzz c" + k + ": linha a mais '" + extra.line + "'");
+                }
+            }
+        } finally {
+            for (SimClient sim : sims) {
+                sim.close();
+            }
+        }
+    }
+
+    private boolean awaitExpected(SimClient client, int id, ReferenceModel model, int[] verified)
+            throws InterruptedException {
+        List<String> expected = model.expectedFor(id);
+        while (verified[id] < expected.size()) {
+            String line = expected.get(verified[id]);
+            String received = client.nextLine();
+            if (!line.equals(received)) {
+                fail("fuzz c" + id + ": esperado '" + line + "', recebido '" + received + "'");
+                return false;
+            }
+            verified[id]++;
+        }
+        return true;
+    }
+
+    public List<SimClient> connectToRoom(int clients, String room) throws IOException, InterruptedException {
+        Random random = new Random(seed);
+        List<SimClient> members = new ArrayList<>();
+        for (int k = 0; k < clients; k++) {
+            SimClient client = new SimClient(port);
+            members.add(client);
+            client.sendFragmented("/nick b" + k + "\n/join " + room + "\n", random);
+            for (int i = 0; i < 2; i++) {
+                String received = client.nextLine();
+                if (!"OK".equals(received)) {
+                    fail("sala b" + k + ": esperado 'OK', recebido '" + received + "'");
+                }
+            }
+        }
+        return members;
+    }
+
+    public List<Long> runBroadcastRound(List<SimClient> members, int messages, int round) throws InterruptedException {
+        int count = members.size();
+        Random random = new Random(seed ^ round);
+        String[][] payloads = new String[count][messages];
+        AtomicLongArray[] sentAt = new AtomicLongArray[count];
+        for (int k = 0; k < count; k++) {
+            sentAt[k] = new AtomicLongArray(messages);
+            for (int i = 0; i < messages; i++) {
+                payloads[k][i] = round + ":" + i + " " + randomText(random);
+            }
+        }
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(count * 2);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        for (int k = 0; k < count; k++) {
+            final int receiver = k;
+            tasks.add(executor.submit(() -> {
+                collectBroadcast(members.get(receiver), receiver, payloads, sentAt, latencies);
+                return null;
+            }));
+        }
+        for (int k = 0; k < count; k++) {
+            final int sender = k;
+            final Random senderRandom = new Random(seed + 31L * round + sender);
+            tasks.add(executor.submit(() -> {
+                SimClient client = members.get(sender);
+                for (int i = 0; i < messages; i++) {
+                    sentAt[sender].set(i, System.nanoTime());
+                    String ending = LINE_ENDINGS[senderRandom.nextInt(LINE_ENDINGS.length)];
+                    client.sendFragmented(payloads[sender][i] + ending, senderRandom);
+                }
+                return null;
+            }));
+        }
+
+        awaitAll(tasks, "difusao");
+        executor.shutdown();
+        return latencies;
+    }
+
+    private void collectBroadcast(SimClient client, int receiver, String[][] payloads,
+                                  AtomicLongArray[] sentAt, List<Long> latencies) throws InterruptedException {
+        int[] nextIndex = new int[payloads.length];
+        int remaining = payloads.length * payloads[0].length;
+
+        while (remaining > 0) {
+            Received received = client.poll();
+            if (received == null) {
+                fail("difusao b" + receiver + ": faltam " + remaining + " mensagens");
+                return;
+            }
+            if (!received.line.startsWith("MESSAGE ")) {
+                continue;
+            }
+
+            String[] parts = received.line.split(" ", 3);
+            int sender = parts.length == 3 ? Integer.parseInt(parts[1].substring(1)) : 0;
+            int index = nextIndex[sender]++;
+            if (parts.length < 3 || index >= payloads[sender].length || !payloads[sender][index].equals(parts[2])) {
+                fail("difusao b" + receiver + ": mensagem inesperada '" + received.line + "'");
+                return;
+            }
+            if (sender == receiver) {
+                latencies.add(received.nanoTime - sentAt[sender].get(index));
+            }
+            remaining--;
+        }
+    }
+
+    public void runSoak(List<SimClient> members, int clients, int messages, long minutes)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes);
+        long baselineHeap = -1;
+        double baselineP99 = 0;
+
+        for (int round = 1; System.currentTimeMillis() < deadline && failures.get() == 0; round++) {
+            runStateMachineFuzz(clients, SOAK_FUZZ_ITERATIONS, round);
+            List<Long> latencies = runBroadcastRound(members, messages, round);
+
+            long heap = usedHeapAfterGc();
+            double p50 = percentile(latencies, 0.50);
+            double p99 = percentile(latencies, 0.99);
+            if (baselineHeap < 0) {
+                baselineHeap = heap;
+                baselineP99 = p99;
+            }
+            System.out.printf("ronda %d: heap=%d KB (%+d KB) p50=%.2f ms p99=%.2f ms (%+.2f ms)%n",
+                round, heap / 1024, (heap - baselineHeap) / 1024, p50, p99, p99 - baselineP99);
+        }
+    }
+
+    private void awaitAll(List<Future<?>> tasks, String phase) throws InterruptedException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                fail(phase + ": " + e.getCause());
+            }
+        }
+    }
+
+    private void fail(String message) {
+        failures.incrementAndGet();
+        System.err.println("FALHA " + message);
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double percentile(List<Long> samples, double quantile) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        int index = Math.max(0, (int) Math.ceil(quantile * sorted.size()) - 1);
+        return sorted.get(index) / 1_000_000.0;
+    }
+
+    private static int size(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length + 1;
+    }
+
+    private static String randomText(Random random) {
+        int words = 1 + random.nextInt(4);
+        StringBuilder text = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        for (int i = 1; i < words; i++) {
+            text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private static String longText(Random random) {
+        int repeats = 1 + random.nextInt(64);
+        StringBuilder text = new StringBuilder(randomText(random));
+        for (int i = 1; i < repeats; i++) {
+            text.append(' ').append(randomText(random));
+        }
+        return text.toString();
+    }
+
+    private static String randomCommand(Random random, int nickPool) {
+        String text = randomText(random);
+        switch (random.nextInt(10)) {
+            case 0:
+                return pad(random, "/nick n" + random.nextInt(nickPool));
+            case 1:
+                return pad(random, random.nextBoolean() ? "/nick" : "/join");
+            case 2:
+                return pad(random, "/join r" + random.nextInt(ROOM_POOL));
+            case 3:
+                return pad(random, "/leave");
+            case 4:
+                return pad(random, text);
+            case 5:
+                return pad(random, "//" + text);
+            case 6:
+                return pad(random, "/foo " + text);
+            case 7:
+                String body = random.nextInt(4) == 0 ? longText(random) : text;
+                return pad(random, "/priv n" + random.nextInt(nickPool + 1) + " " + body);
+            case 8:
+                return pad(random, "/priv n" + random.nextInt(nickPool));
+            default:
+                return random.nextBoolean() ? "" : "   ";
+        }
+    }
+
+    private static String pad(Random random, String line) {
+        String[] padding = {"", " ", "\t", "  "};
+        return padding[random.nextInt(padding.length)] + line + padding[random.nextInt(padding.length)];
+    }
+
+    private static class ReferenceModel {
+
+        private final ClientState.ConnectionState[] states;
+        private final String[] nicknames;
+        private final String[] rooms;
+        private final List<List<String>> expected;
+        private final Map<String, Integer> nicknameOwners;
+        private final Map<String, Set<Integer>> roomMembers;
+        private final OfflineModel offline;
+
+        ReferenceModel(int clients, OfflineModel offline) {
+            this.offline = offline;
+            this.states = new ClientState.ConnectionState[clients];
+            this.nicknames = new String[clients];
+            this.rooms = new String[clients];
+            this.expected = new ArrayList<>();
+            this.nicknameOwners = new HashMap<>();
+            this.roomMembers = new HashMap<>();
+            for (int k = 0; k < clients; k++) {
+                states[k] = ClientState.ConnectionState.INITIAL;
+                expected.add(new ArrayList<>());
+            }
+        }
+
+        List<String> expectedFor(int client) {
+            return expected.get(client);
+        }
+
+        void apply(int client, String line) {
+            String message = line.trim();
+            if (message.isEmpty()) {
+                return;
+            }
+            if (!message.startsWith("/")) {
+                text(client, message);
+                return;
+            }
+            if (message.startsWith("//")) {
+                text(client, message.substring(1));
+                return;
+            }
+
+            String[] parts = message.split("\\s+", 2);
+            String argument = parts.length > 1 ? parts[1] : null;
+            switch (parts[0]) {
+                case "/nick":
+                    nick(client, argument);
+                    break;
+                case "/join":
+                    join(client, argument);
+                    break;
+                case "/leave":
+                    leave(client);
+                    break;
+                case "/priv":
+                    priv(client, argument);
+                    break;
+                case "/bye":
+                    bye(client);
+                    break;
+                default:
+                    text(client, message);
+            }
+        }
+
+        private void nick(int client, String argument) {
+            if (argument == null || nicknameOwners.containsKey(argument.trim())) {
+                send(client, "ERROR");
+                return;
+            }
+            String nickname = argument.trim();
+            String oldNickname = nicknames[client];
+            if (oldNickname != null) {
+                nicknameOwners.remove(oldNickname);
+            }
+            nicknameOwners.put(nickname, client);
+            nicknames[client] = nickname;
+            if (states[client] == ClientState.ConnectionState.INITIAL) {
+                states[client] = ClientState.ConnectionState.READY;
+            }
+
+            send(client, "OK");
+            if (states[client] == ClientState.ConnectionState.IN_ROOM) {
+                sendToRoom(rooms[client], "NEWNICK " + oldNickname + " " + nickname, client);
+            }
+            if (offline != null) {
+                for (String line : offline.take(nickname)) {
+                    send(client, line);
+                }
+            }
+        }
+
+        private void join(int client, String argument) {
+            if (argument == null || states[client] == ClientState.ConnectionState.INITIAL) {
+                send(client, "ERROR");
+                return;
+            }
+            if (states[client] == ClientState.ConnectionState.IN_ROOM) {
+                exitRoom(client);
+            }
+            String room = argument.trim();
+            roomMembers.computeIfAbsent(room, k -> new LinkedHashSet<>()).add(client);
+            rooms[client] = room;
+            states[client] = ClientState.ConnectionState.IN_ROOM;
+
+            send(client, "OK");
+            sendToRoom(room, "JOINED " + nicknames[client], client);
+        }
+
+        private void leave(int client) {
+            if (states[client] != ClientState.ConnectionState.IN_ROOM) {
+                send(client, "ERROR");
+                return;
+            }
+            exitRoom(client);
+            send(client, "OK");
+        }
+
+        private void text(int client, String body) {
+            if (states[client] != ClientState.ConnectionState.IN_ROOM) {
+                send(client, "ERROR");
+                return;
+            }
+            sendToRoom(rooms[client], "MESSAGE " + nicknames[client] + " " + body, -1);
+        }
+
+        private void priv(int client, String argument) {
+            String[] parts = argument != null ? argument.split("\\s+", 2) : new String[0];
+            if (parts.length != 2) {
+                send(client, "ERROR");
+                return;
+            }
+            String line = "PRIVATE " + nicknames[client] + " " + parts[1];
+            if (size(line) > MAX_PRIVATE_BYTES) {
+                send(client, "ERROR");
+                return;
+            }
+            Integer target = nicknameOwners.get(parts[0]);
+            if (target == null) {
+                boolean stored = offline != null && nicknames[client] != null && offline.store(parts[0], line);
+                send(client, stored ? "OK" : "ERROR");
+                return;
+            }
+            send(target, line);
+            send(client, "OK");
+        }
+
+        private void bye(int client) {
+            if (states[client] == ClientState.ConnectionState.IN_ROOM) {
+                exitRoom(client);
+            }
+            send(client, "BYE");
+            if (nicknames[client] != null) {
+                nicknameOwners.remove(nicknames[client]);
+            }
+        }
+
+        private void exitRoom(int client) {
+            String room = rooms[client];
+            Set<Integer> members = roomMembers.get(room);
+            members.remove(client);
+            sendToRoom(room, "LEFT " + nicknames[client], client);
+            if (members.isEmpty()) {
+                roomMembers.remove(room);
+            }
+            rooms[client] = null;
+            states[client] = ClientState.ConnectionState.READY;
+        }
+
+        private void sendToRoom(String room, String line, int excludeClient) {
+            for (int member : roomMembers.getOrDefault(room, Collections.emptySet())) {
+                if (member != excludeClient) {
+                    send(member, line);
+                }
+            }
+        }
+
+        private void send(int client, String line) {
+            expected.get(client).add(line);
+        }
+    }
+
+    private static class OfflineModel {
+
+        private final int perRecipientLimit = Integer.getInteger("chat.offline.perRecipient", 100);
+        private final long memoryByteLimit = Long.getLong("chat.offline.memoryBytes", 4L * 1024 * 1024);
+        private final long spillByteLimit = Long.getLong("chat.offline.spillBytes", 64L * 1024 * 1024);
+        private final Map<String, List<String>> queued = new HashMap<>();
+        private final Map<String, Integer> spilledCounts = new HashMap<>();
+        private final Map<String, Long> spilledBytes = new HashMap<>();
+        private final Deque<String> inMemoryOrder = new ArrayDeque<>();
+        private final Deque<Integer> inMemorySizes = new ArrayDeque<>();
+        private long memoryBytes;
+        private long totalSpilledBytes;
+
+        boolean store(String nickname, String line) {
+            int size = size(line);
+            List<String> queue = queued.getOrDefault(nickname, Collections.emptyList());
+            if (queue.size() >= perRecipientLimit || size > memoryByteLimit || size > MAX_PRIVATE_BYTES) {
+                return false;
+            }
+
+            while (memoryBytes + size > memoryByteLimit) {
+                if (inMemorySizes.isEmpty() || totalSpilledBytes + inMemorySizes.peekFirst() > spillByteLimit) {
+                    return false;
+                }
+                String spilledNickname = inMemoryOrder.pollFirst();
+                int spilledSize = inMemorySizes.pollFirst();
+                memoryBytes -= spilledSize;
+                totalSpilledBytes += spilledSize;
+                spilledCounts.merge(spilledNickname, 1, Integer::sum);
+                spilledBytes.merge(spilledNickname, (long) spilledSize, Long::sum);
+            }
+
+            queued.computeIfAbsent(nickname, k -> new ArrayList<>()).add(line);
+            inMemoryOrder.addLast(nickname);
+            inMemorySizes.addLast(size);
+            memoryBytes += size;
+            return true;
+        }
+
+        List<String> take(String nickname) {
+            List<String> lines = queued.get(nickname);
+            if (lines == null) {
+                return Collections.emptyList();
+            }
+
+            int taken = 0;
+            long budget = MAX_PRIVATE_BYTES;
+            while (taken < lines.size() && size(lines.get(taken)) <= budget) {
+                budget -= size(lines.get(taken));
+                taken++;
+            }
+            List<String> delivered = new ArrayList<>(lines.subList(0, taken));
+            lines.subList(0, taken).clear();
+            if (lines.isEmpty()) {
+                queued.remove(nickname);
+            }
+
+            int spilled = Math.min(taken, spilledCounts.getOrDefault(nickname, 0));
+            for (int i = 0; i < spilled; i++) {
+                int lineSize = size(delivered.get(i));
+                totalSpilledBytes -= lineSize;
+                spilledBytes.merge(nickname, (long) -lineSize, Long::sum);
+            }
+            if (spilled > 0 && spilledCounts.merge(nickname, -spilled, Integer::sum) == 0) {
+                spilledCounts.remove(nickname);
+                spilledBytes.remove(nickname);
+            }
+
+            int fromMemory = taken - spilled;
+            Iterator<String> order = inMemoryOrder.iterator();
+            Iterator<Integer> sizes = inMemorySizes.iterator();
+            while (fromMemory > 0 && order.hasNext()) {
+                int lineSize = sizes.next();
+                if (order.next().equals(nickname)) {
+                    order.remove();
+                    sizes.remove();
+                    memoryBytes -= lineSize;
+                    fromMemory--;
+                }
+            }
+            return delivered;
+        }
+    }
+
+    private static class Received {
+
+        final String line;
+        final long nanoTime;
+
+        Received(String line, long nanoTime) {
+            this.line = line;
+            this.nanoTime = nanoTime;
+        }
+    }
+
+    private static class SimClient implements AutoCloseable {
+
+        private final Socket socket;
+        private final OutputStream output;
+        private final BlockingQueue<Received> received;
+
+        SimClient(int port) throws IOException {
+            this.socket = new Socket("localhost", port);
+            this.socket.setTcpNoDelay(true);
+            this.output = socket.getOutputStream();
+            this.received = new LinkedBlockingQueue<>();
+
+            Thread reader = new Thread(this::readLoop, "sim-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readLoop() {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    received.add(new Received(line, System.nanoTime()));
+                }
+            } catch (IOException e) {
+            }
+        }
+
+        void sendFragmented(String data, Random random) throws IOException, InterruptedException {
+            byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            sendFragmented(bytes, 0, bytes.length, random);
+        }
+
+        void sendFragmented(byte[] bytes, int from, int to, Random random) throws IOException, InterruptedException {
+            int offset = from;
+            while (offset < to) {
+                int length = Math.min(to - offset, 1 + random.nextInt(64));
+                output.write(bytes, offset, length);
+                output.flush();
+                offset += length;
+                if (random.nextInt(8) == 0) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+
+        Received poll() throws InterruptedException {
+            return poll(TIMEOUT_MS);
+        }
+
+        Received poll(long timeoutMs) throws InterruptedException {
+            return received.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        String nextLine() throws InterruptedException {
+            Received next = poll();
+            return next != null ? next.line : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
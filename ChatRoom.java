@@ -44,10 +44,8 @@ public class ChatRoom {
     }
 
     public void forEachParticipant(Consumer<String> action) {
-        synchronized (participants) {
-            for (String participant : participants) {
-                action.accept(participant);
-            }
+        for (String participant : getParticipants()) {
+            action.accept(participant);
         }
     }
 
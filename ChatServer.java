@@ -1,20 +1,42 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ChatServer {
     
-    private Selector channelSelector;
+    private volatile Selector channelSelector;
     private ServerSocketChannel serverChannel;
+    private volatile boolean draining = false;
+    private final Set<ClientState> pendingWrites = new LinkedHashSet<>();
+    private int emptyWakeups = 0;
+
+    private static final long DRAIN_TIMEOUT_MS = Long.getLong("chat.drainTimeoutMs", 5000);
+    private static final long RECONNECT_SPREAD_MS = Long.getLong("chat.reconnectSpreadMs", 2000);
+    private static final boolean REUSE_PORT = Boolean.getBoolean("chat.reusePort");
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int EMPTY_WAKEUP_THRESHOLD = 512;
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.spinMicros", 0));
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("chat.batchSize", 64));
+    private static final long MAX_PENDING_OUTPUT_BYTES = Long.getLong("chat.maxPendingOutputBytes", 1024 * 1024);
+    private static final long MAX_PRIVATE_BYTES = MAX_PENDING_OUTPUT_BYTES - "OK\n".length();
+    private static final int WRITE_SLICE = 64;
     
     private static final Map<String, ClientState> nicknameToClient = new ConcurrentHashMap<>();
     private static final Map<String, ChatRoom> activeRooms = new ConcurrentHashMap<>();
+    private static final OfflineMailbox offlineMailbox = createOfflineMailbox();
 
     public static void main(String[] args) {
         if (args.length != 1) {
@@ -33,41 +55,218 @@ public class ChatServer {
         new ChatServer().initializeServer(port);
     }
 
+    private static OfflineMailbox createOfflineMailbox() {
+        if (!Boolean.getBoolean("chat.offline")) {
+            return null;
+        }
+        int perRecipientLimit = Integer.getInteger("chat.offline.perRecipient", 100);
+        long memoryByteLimit = Long.getLong("chat.offline.memoryBytes", 4L * 1024 * 1024);
+        long spillByteLimit = Long.getLong("chat.offline.spillBytes", 64L * 1024 * 1024);
+        String spillDirectory = System.getProperty("chat.offline.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "chat-offline").toString());
+        return new OfflineMailbox(perRecipientLimit, memoryByteLimit, spillByteLimit, MAX_PRIVATE_BYTES,
+            Paths.get(spillDirectory));
+    }
+
     public void initializeServer(int port) {
         try {
             channelSelector = Selector.open();
             serverChannel = ServerSocketChannel.open();
             serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            if (REUSE_PORT && serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
             serverChannel.socket().bind(new InetSocketAddress(port));
             serverChannel.register(channelSelector, SelectionKey.OP_ACCEPT);
+            registerShutdownHook(Thread.currentThread());
 
-            while (true) {
-                channelSelector.select();
-                Set<SelectionKey> selectedKeys = channelSelector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
+            while (!draining) {
+                if (waitForEvents() > 0) {
+                    processSelectedKeys();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erro no servidor: " + e.getMessage());
+        } finally {
+            drainClients();
+        }
+    }
 
-                    if (key.isAcceptable()) {
-                        handleNewConnection();
-                    } else if (key.isReadable()) {
-                        handleClientRead(key);
-                    }
+    private int waitForEvents() throws IOException {
+        if (SPIN_NANOS > 0) {
+            long spinDeadline = System.nanoTime() + SPIN_NANOS;
+            do {
+                int ready = channelSelector.selectNow();
+                if (ready > 0) {
+                    emptyWakeups = 0;
+                    return ready;
                 }
+                Thread.onSpinWait();
+            } while (System.nanoTime() < spinDeadline && !draining);
+
+            if (draining) {
+                return 0;
+            }
+        }
+
+        long selectStart = System.nanoTime();
+        int ready = channelSelector.select(SELECT_TIMEOUT_MS);
+        long elapsed = System.nanoTime() - selectStart;
+
+        if (ready == 0 && !draining && elapsed < TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MS)) {
+            if (++emptyWakeups >= EMPTY_WAKEUP_THRESHOLD) {
+                rebuildSelector();
+            }
+        } else {
+            emptyWakeups = 0;
+        }
+        return ready;
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keyIterator = channelSelector.selectedKeys().iterator();
+
+        while (keyIterator.hasNext()) {
+            int processed = 0;
+            while (keyIterator.hasNext() && processed < BATCH_SIZE) {
+                SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+                handleSelectedKey(key);
+                processed++;
+            }
+            flushPendingWrites();
+        }
+    }
+
+    private void handleSelectedKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        try {
+            if (key.isAcceptable()) {
+                handleNewConnection();
+                return;
+            }
+            if (key.isReadable()) {
+                handleClientRead(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+                pendingWrites.add((ClientState) key.attachment());
             }
         } catch (IOException e) {
+            if (key.attachment() instanceof ClientState) {
+                closeClient((ClientState) key.attachment());
+            } else {
+                System.err.println("Erro ao aceitar ligação: " + e.getMessage());
+            }
+        }
+    }
+
+    private void rebuildSelector() throws IOException {
+        Selector oldSelector = channelSelector;
+        Selector newSelector = Selector.open();
+
+        for (SelectionKey key : oldSelector.keys()) {
+            if (key.isValid()) {
+                key.channel().register(newSelector, key.interestOps(), key.attachment());
+            }
+        }
+
+        channelSelector = newSelector;
+        oldSelector.close();
+        emptyWakeups = 0;
+        System.err.println("Selector reconstruído após wakeups vazios repetidos.");
+    }
+
+    private void registerShutdownHook(Thread serverThread) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            draining = true;
+            channelSelector.wakeup();
+            try {
+                serverThread.join(DRAIN_TIMEOUT_MS + 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    private void drainClients() {
+        draining = true;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+        }
+
+        if (channelSelector != null) {
+            List<ClientState> clients = new ArrayList<>();
+            for (SelectionKey key : channelSelector.keys()) {
+                if (key.attachment() instanceof ClientState && key.channel().isOpen()) {
+                    clients.add((ClientState) key.attachment());
+                }
+            }
+
+            for (ClientState state : clients) {
+                long delay = RECONNECT_SPREAD_MS > 0 ? ThreadLocalRandom.current().nextLong(RECONNECT_SPREAD_MS) : 0;
+                sendToClient(state, "RECONNECT " + delay);
+                sendToClient(state, "BYE");
+            }
+            flushPendingWrites();
+            awaitDrainedOutput(clients);
+
+            for (ClientState state : clients) {
+                try {
+                    state.getConnection().close();
+                } catch (IOException e) {
+                }
+            }
+
+            try {
+                channelSelector.close();
+            } catch (IOException e) {
+            }
+        }
+
+        if (offlineMailbox != null) {
+            offlineMailbox.shutdown();
+        }
+    }
+
+    private void awaitDrainedOutput(List<ClientState> clients) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+
+        while (clients.stream().anyMatch(state -> state.getConnection().isOpen() && state.hasPendingOutput())) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                break;
+            }
+            try {
+                channelSelector.select(remainingMs);
+            } catch (IOException e) {
+                break;
+            }
+
+            for (SelectionKey key : channelSelector.selectedKeys()) {
+                if (key.isValid() && key.isWritable()) {
+                    flushClient((ClientState) key.attachment());
+                }
+            }
+            channelSelector.selectedKeys().clear();
         }
     }
 
     private void handleNewConnection() throws IOException {
         SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
         client.configureBlocking(false);
-        client.register(channelSelector, SelectionKey.OP_READ);
         
         ClientState clientState = new ClientState(client);
-        client.keyFor(channelSelector).attach(clientState);
+        client.register(channelSelector, SelectionKey.OP_READ, clientState);
     }
 
     private void handleClientRead(SelectionKey key) throws IOException {
@@ -97,9 +296,10 @@ public class ChatServer {
         StringBuilder msgBuffer = state.getPartialMessage();
         
         buffer.flip();
+        int completeLength = completeUtf8Length(buffer);
         
-        if (buffer.hasRemaining()) {
-            byte[] data = new byte[buffer.remaining()];
+        if (completeLength > 0) {
+            byte[] data = new byte[completeLength];
             buffer.get(data);
             String receivedData = new String(data, StandardCharsets.UTF_8);
             
@@ -107,7 +307,20 @@ public class ChatServer {
             extractCompleteLines(state);
         }
         
-        buffer.clear();
+        buffer.compact();
+    }
+
+    private int completeUtf8Length(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int back = 1; back <= 3 && limit - back >= start; back++) {
+            byte b = buffer.get(limit - back);
+            if ((b & 0xC0) != 0x80) {
+                int sequenceLength = (b & 0xE0) == 0xC0 ? 2 : (b & 0xF0) == 0xE0 ? 3 : (b & 0xF8) == 0xF0 ? 4 : 1;
+                return sequenceLength > back ? limit - back - start : limit - start;
+            }
+        }
+        return limit - start;
     }
 
     private void extractCompleteLines(ClientState state) {
@@ -117,7 +330,7 @@ public class ChatServer {
         int lineStart = 0;
         boolean foundLines = false;
         
-        for (int i = 0; i < accumulated.length(); i++) {
+        for (int i = 0; i < accumulated.length() && state.getConnection().isOpen(); i++) {
             char c = accumulated.charAt(i);
             if (c == '\n' || c == '\r') {
                 String completeLine = accumulated.substring(lineStart, i).trim();
@@ -221,21 +434,40 @@ public class ChatServer {
             state.setState(ClientState.ConnectionState.READY);
             nicknameToClient.put(nickname, state);
             sendToClient(state, "OK");
+            deliverOfflineMessages(state, nickname);
         }
         else if (state.isReady()) {
             nicknameToClient.remove(oldNickname);
             state.setNickname(nickname);
             nicknameToClient.put(nickname, state);
             sendToClient(state, "OK");
+            deliverOfflineMessages(state, nickname);
         }
         else if (state.isInChatRoom()) {
             String roomName = state.getRoom();
             nicknameToClient.remove(oldNickname);
             state.setNickname(nickname);
             nicknameToClient.put(nickname, state);
+            ChatRoom room = activeRooms.get(roomName);
+            if (room != null) {
+                room.removeParticipant(oldNickname);
+                room.addParticipant(nickname);
+            }
             
             sendToClient(state, "OK");
             notifyRoom(roomName, "NEWNICK " + oldNickname + " " + nickname, nickname);
+            deliverOfflineMessages(state, nickname);
+        }
+    }
+
+    private void deliverOfflineMessages(ClientState state, String nickname) {
+        if (offlineMailbox == null) {
+            return;
+        }
+        long outputBudget = MAX_PENDING_OUTPUT_BYTES - state.getPendingOutputBytes();
+        List<String> messages = offlineMailbox.take(nickname, outputBudget);
+        if (!messages.isEmpty()) {
+            sendToClient(state, String.join("\n", messages));
         }
     }
 
@@ -280,14 +512,14 @@ public class ChatServer {
     private void commandBye(ClientState state) {
         String nickname = state.getNickname();
         if (state.isInChatRoom()) {
-            String roomName = state.getRoom();
-            notifyRoom(roomName, "LEFT " + nickname, nickname);
+            exitFromRoom(state, state.getRoom());
         }
         sendToClient(state, "BYE");
+        flushClient(state);
         
         try {
             if (nickname != null) {
-                nicknameToClient.remove(nickname);
+                nicknameToClient.remove(nickname, state);
             }
             state.getConnection().close();
         } catch (IOException e) {
@@ -296,14 +528,25 @@ public class ChatServer {
 
     private void commandPrivate(ClientState state, String targetNick, String message) {
         ClientState targetClient = nicknameToClient.get(targetNick);
-        
-        if (targetClient == null) {
+        String senderNick = state.getNickname();
+        String line = "PRIVATE " + senderNick + " " + message;
+
+        if (line.getBytes(StandardCharsets.UTF_8).length + 1 > MAX_PRIVATE_BYTES) {
             sendToClient(state, "ERROR");
             return;
         }
 
-        String senderNick = state.getNickname();
-        sendToClient(targetClient, "PRIVATE " + senderNick + " " + message);
+        if (targetClient == null) {
+            if (offlineMailbox != null && senderNick != null
+                    && offlineMailbox.store(targetNick, line)) {
+                sendToClient(state, "OK");
+            } else {
+                sendToClient(state, "ERROR");
+            }
+            return;
+        }
+
+        sendToClient(targetClient, line);
         sendToClient(state, "OK");
     }
 
@@ -338,13 +581,96 @@ public class ChatServer {
     }
 
     private void sendToClient(ClientState state, String message) {
+        if (!state.getConnection().isOpen()) {
+            return;
+        }
+        String messageWithNewline = message + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(messageWithNewline.getBytes(StandardCharsets.UTF_8));
+
+        if (state.getPendingOutputBytes() + buffer.remaining() > MAX_PENDING_OUTPUT_BYTES
+                && !isWaitingForWritable(state)) {
+            flushClient(state);
+            if (!state.getConnection().isOpen()) {
+                return;
+            }
+        }
+        if (state.getPendingOutputBytes() + buffer.remaining() > MAX_PENDING_OUTPUT_BYTES) {
+            System.err.println("Cliente lento desligado: " + state);
+            closeClient(state);
+            return;
+        }
+
+        state.queueOutput(buffer);
+        if (!isWaitingForWritable(state)) {
+            pendingWrites.add(state);
+        }
+    }
+
+    private boolean isWaitingForWritable(ClientState state) {
+        SelectionKey key = state.getConnection().keyFor(channelSelector);
+        return key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    private void flushPendingWrites() {
+        while (!pendingWrites.isEmpty()) {
+            List<ClientState> batch = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+            for (ClientState state : batch) {
+                flushClient(state);
+            }
+        }
+    }
+
+    private void flushClient(ClientState state) {
+        SocketChannel connection = state.getConnection();
+        if (!connection.isOpen()) {
+            state.discardPendingOutput();
+            return;
+        }
+
         try {
-            String messageWithNewline = message + "\n";
-            ByteBuffer buffer = ByteBuffer.wrap(messageWithNewline.getBytes(StandardCharsets.UTF_8));
-            state.getConnection().write(buffer);
+            ByteBuffer[] slice = new ByteBuffer[WRITE_SLICE];
+            boolean socketFull = false;
+            while (state.hasPendingOutput() && !socketFull) {
+                int count = 0;
+                long sliceBytes = 0;
+                for (ByteBuffer buffer : state.getPendingOutput()) {
+                    if (count == WRITE_SLICE) {
+                        break;
+                    }
+                    slice[count++] = buffer;
+                    sliceBytes += buffer.remaining();
+                }
+                long written = connection.write(slice, 0, count);
+                state.outputWritten(written);
+                socketFull = written < sliceBytes;
+            }
         } catch (IOException e) {
+            closeClient(state);
+            return;
+        }
+
+        SelectionKey key = connection.keyFor(channelSelector);
+        if (key != null && key.isValid()) {
+            int interest = draining ? 0 : SelectionKey.OP_READ;
+            if (state.hasPendingOutput()) {
+                interest |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != interest) {
+                key.interestOps(interest);
+            }
+        }
+    }
+
+    private void closeClient(ClientState state) {
+        state.discardPendingOutput();
+        if (!draining) {
             clientDisconnected(state);
         }
+        try {
+            state.getConnection().close();
+        } catch (IOException e) {
+        }
     }
 
     private void notifyRoom(String roomName, String message, String excludeNickname) {
@@ -363,8 +689,7 @@ public class ChatServer {
 
     private void clientDisconnected(ClientState state) {
         String nickname = state.getNickname();
-        if (nickname != null) {
-            nicknameToClient.remove(nickname);
+        if (nickname != null && nicknameToClient.remove(nickname, state)) {
             if (state.isInChatRoom()) {
                 String roomName = state.getRoom();
                 ChatRoom room = activeRooms.get(roomName);
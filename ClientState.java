@@ -1,5 +1,6 @@
 import java.nio.channels.SocketChannel;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 public class ClientState {
     
@@ -15,6 +16,8 @@ public class ClientState {
     private final SocketChannel connection;
     private final ByteBuffer inputBuffer;
     private StringBuilder partialMessage;
+    private final ArrayDeque<ByteBuffer> pendingOutput;
+    private long pendingOutputBytes;
 
     public ClientState(SocketChannel connection) {
         this.connection = connection;
@@ -23,6 +26,8 @@ public class ClientState {
         this.activeRoom = null;
         this.inputBuffer = ByteBuffer.allocate(2048);
         this.partialMessage = new StringBuilder();
+        this.pendingOutput = new ArrayDeque<>();
+        this.pendingOutputBytes = 0;
     }
 
     public ConnectionState getState() {
@@ -49,6 +54,35 @@ public class ClientState {
         return partialMessage;
     }
 
+    public ArrayDeque<ByteBuffer> getPendingOutput() {
+        return pendingOutput;
+    }
+
+    public long getPendingOutputBytes() {
+        return pendingOutputBytes;
+    }
+
+    public void queueOutput(ByteBuffer buffer) {
+        pendingOutput.addLast(buffer);
+        pendingOutputBytes += buffer.remaining();
+    }
+
+    public void outputWritten(long bytes) {
+        pendingOutputBytes -= bytes;
+        while (!pendingOutput.isEmpty() && !pendingOutput.peekFirst().hasRemaining()) {
+            pendingOutput.pollFirst();
+        }
+    }
+
+    public void discardPendingOutput() {
+        pendingOutput.clear();
+        pendingOutputBytes = 0;
+    }
+
+    public boolean hasPendingOutput() {
+        return !pendingOutput.isEmpty();
+    }
+
     public void setState(ConnectionState newState) {
         this.state = newState;
     }
@@ -126,6 +160,7 @@ public class ClientState {
     public void clearAllBuffers() {
         this.inputBuffer.clear();
         this.partialMessage = new StringBuilder();
+        discardPendingOutput();
     }
 
     public boolean canSendMessage() {
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class OfflineMailbox {
+
+    private final int perRecipientLimit;
+    private final long memoryByteLimit;
+    private final long spillByteLimit;
+    private final long messageByteLimit;
+    private final Path spillRoot;
+    private final Map<String, Deque<String>> pendingMessages;
+    private final Map<String, Integer> spilledCounts;
+    private final Map<String, Long> spilledBytes;
+    private final Deque<String> arrivalOrder;
+    private Path spillDirectory;
+    private long memoryBytes;
+    private long totalSpilledBytes;
+
+    public OfflineMailbox(int perRecipientLimit, long memoryByteLimit, long spillByteLimit,
+                          long messageByteLimit, Path spillRoot) {
+        this.perRecipientLimit = perRecipientLimit;
+        this.memoryByteLimit = memoryByteLimit;
+        this.spillByteLimit = spillByteLimit;
+        this.messageByteLimit = messageByteLimit;
+        this.spillRoot = spillRoot;
+        this.pendingMessages = new HashMap<>();
+        this.spilledCounts = new HashMap<>();
+        this.spilledBytes = new HashMap<>();
+        this.arrivalOrder = new ArrayDeque<>();
+        this.spillDirectory = null;
+        this.memoryBytes = 0;
+        this.totalSpilledBytes = 0;
+    }
+
+    public synchronized boolean store(String nickname, String message) {
+        int size = byteSize(message);
+        if (getPendingCount(nickname) >= perRecipientLimit || size > memoryByteLimit || size > messageByteLimit) {
+            return false;
+        }
+
+        while (memoryBytes + size > memoryByteLimit) {
+            if (!spillOldest()) {
+                return false;
+            }
+        }
+
+        pendingMessages.computeIfAbsent(nickname, k -> new ArrayDeque<>()).addLast(message);
+        arrivalOrder.addLast(nickname);
+        memoryBytes += size;
+        return true;
+    }
+
+    public synchronized List<String> take(String nickname, long maxBytes) {
+        List<String> messages = new ArrayList<>();
+        long budget = maxBytes;
+
+        if (spilledCounts.containsKey(nickname)) {
+            Path spillFile = spillDirectory.resolve(spillFileName(nickname));
+            List<String> spilled;
+            try {
+                spilled = Files.readAllLines(spillFile, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println("Erro ao ler mensagens offline: " + e.getMessage());
+                return messages;
+            }
+
+            int taken = 0;
+            long takenBytes = 0;
+            while (taken < spilled.size() && byteSize(spilled.get(taken)) <= budget) {
+                budget -= byteSize(spilled.get(taken));
+                takenBytes += byteSize(spilled.get(taken));
+                taken++;
+            }
+            if (taken == 0) {
+                return messages;
+            }
+
+            try {
+                if (taken == spilled.size()) {
+                    Files.delete(spillFile);
+                } else {
+                    rewriteSpillFile(spillFile, spilled.subList(taken, spilled.size()));
+                }
+            } catch (IOException e) {
+                System.err.println("Erro ao ler mensagens offline: " + e.getMessage());
+                return messages;
+            }
+
+            messages.addAll(spilled.subList(0, taken));
+            totalSpilledBytes -= takenBytes;
+            if (taken == spilled.size()) {
+                spilledCounts.remove(nickname);
+                spilledBytes.remove(nickname);
+            } else {
+                spilledCounts.put(nickname, spilled.size() - taken);
+                spilledBytes.merge(nickname, -takenBytes, Long::sum);
+                return messages;
+            }
+        }
+
+        Deque<String> queue = pendingMessages.get(nickname);
+        if (queue == null) {
+            return messages;
+        }
+
+        int taken = 0;
+        while (!queue.isEmpty() && byteSize(queue.peekFirst()) <= budget) {
+            String message = queue.pollFirst();
+            budget -= byteSize(message);
+            memoryBytes -= byteSize(message);
+            messages.add(message);
+            taken++;
+        }
+        if (queue.isEmpty()) {
+            pendingMessages.remove(nickname);
+        }
+
+        Iterator<String> order = arrivalOrder.iterator();
+        while (taken > 0 && order.hasNext()) {
+            if (order.next().equals(nickname)) {
+                order.remove();
+                taken--;
+            }
+        }
+        return messages;
+    }
+
+    public synchronized int getPendingCount(String nickname) {
+        Deque<String> queue = pendingMessages.get(nickname);
+        return (queue != null ? queue.size() : 0) + spilledCounts.getOrDefault(nickname, 0);
+    }
+
+    public synchronized void shutdown() {
+        pendingMessages.clear();
+        spilledCounts.clear();
+        spilledBytes.clear();
+        arrivalOrder.clear();
+        memoryBytes = 0;
+        totalSpilledBytes = 0;
+
+        if (spillDirectory == null) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDirectory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(spillDirectory);
+        } catch (IOException e) {
+            System.err.println("Erro ao apagar mensagens offline: " + e.getMessage());
+        }
+        spillDirectory = null;
+    }
+
+    private boolean spillOldest() {
+        String nickname = arrivalOrder.peekFirst();
+        if (nickname == null) {
+            return false;
+        }
+        Deque<String> queue = pendingMessages.get(nickname);
+        String message = queue.peekFirst();
+        int size = byteSize(message);
+        if (totalSpilledBytes + size > spillByteLimit) {
+            return false;
+        }
+
+        try {
+            appendToSpillFile(nickname, message);
+        } catch (IOException e) {
+            System.err.println("Erro ao guardar mensagem offline: " + e.getMessage());
+            return false;
+        }
+
+        arrivalOrder.pollFirst();
+        queue.pollFirst();
+        if (queue.isEmpty()) {
+            pendingMessages.remove(nickname);
+        }
+        memoryBytes -= size;
+        totalSpilledBytes += size;
+        spilledCounts.merge(nickname, 1, Integer::sum);
+        spilledBytes.merge(nickname, (long) size, Long::sum);
+        return true;
+    }
+
+    private void appendToSpillFile(String nickname, String message) throws IOException {
+        Path spillFile = claimSpillDirectory().resolve(spillFileName(nickname));
+        long expectedSize = spilledBytes.getOrDefault(nickname, 0L);
+        ByteBuffer line = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+
+        try (FileChannel channel = FileChannel.open(spillFile,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), ownerOnly("rw-------"))) {
+            try {
+                channel.position(expectedSize);
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+            } catch (IOException e) {
+                channel.truncate(expectedSize);
+                throw e;
+            }
+        }
+    }
+
+    private void rewriteSpillFile(Path spillFile, List<String> remaining) throws IOException {
+        Path rewritten = Files.createTempFile(spillDirectory, "rewrite-", ".tmp", ownerOnly("rw-------"));
+        try {
+            StringBuilder content = new StringBuilder();
+            for (String message : remaining) {
+                content.append(message).append('\n');
+            }
+            Files.write(rewritten, content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(rewritten, spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(rewritten);
+            throw e;
+        }
+    }
+
+    private Path claimSpillDirectory() throws IOException {
+        if (spillDirectory == null) {
+            Files.createDirectories(spillRoot, ownerOnly("rwx------"));
+            spillDirectory = Files.createTempDirectory(spillRoot, "mailbox-", ownerOnly("rwx------"));
+        }
+        return spillDirectory;
+    }
+
+    private static FileAttribute<?>[] ownerOnly(String permissions) {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))
+        };
+    }
+
+    private static String spillFileName(String nickname) {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(nickname.getBytes(StandardCharsets.UTF_8)) + ".queue";
+    }
+
+    private static int byteSize(String message) {
+        return message.getBytes(StandardCharsets.UTF_8).length + 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("OfflineMailbox{recipients=%d, memoryBytes=%d, spilledBytes=%d}",
+            pendingMessages.size(), memoryBytes, totalSpilledBytes);
+    }
+}